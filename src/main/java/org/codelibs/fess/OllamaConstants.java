@@ -35,6 +35,18 @@ public class OllamaConstants {
     /** The key prefix for the Ollama output field of the ingester */
     public static final String OLLAMA_INGESTER_FIELD_PREFIX = "ollama.ingester.field.";
 
+    /** The key of the maximum number of concurrent requests to the Ollama endpoint */
+    public static final String OLLAMA_SCHEDULER_MAX_CONCURRENCY = "ollama.scheduler.max.concurrency";
+
+    /** The key of the number of slots kept free for each idle request scheduler lane with a higher priority */
+    public static final String OLLAMA_SCHEDULER_RESERVE = "ollama.scheduler.reserve";
+
+    /** The key prefix for the weight of a request scheduler lane */
+    public static final String OLLAMA_SCHEDULER_WEIGHT_PREFIX = "ollama.scheduler.weight.";
+
+    /** The key prefix for the queue timeout (ms) of a request scheduler lane */
+    public static final String OLLAMA_SCHEDULER_TIMEOUT_PREFIX = "ollama.scheduler.timeout.";
+
     /** The placeholder for the input text in the Ollama prompt */
     public static final String TEXT_PLACEHOLDER = "[[INPUT_TEXT]]";
 
@@ -37,6 +37,8 @@ import org.codelibs.fess.crawler.exception.ExtractException;
 import org.codelibs.fess.crawler.exception.UnsupportedExtractException;
 import org.codelibs.fess.crawler.extractor.impl.AbstractExtractor;
 import org.codelibs.fess.crawler.ollama.OllamaConfig;
+import org.codelibs.fess.crawler.ollama.OllamaRequestScheduler;
+import org.codelibs.fess.crawler.ollama.OllamaRequestScheduler.Lane;
 import org.codelibs.fess.mylasta.direction.FessConfig;
 import org.codelibs.fess.util.ComponentUtil;
 import org.codelibs.opensearch.runner.net.OpenSearchCurl;
@@ -52,6 +54,8 @@ public class OllamaExtractor extends AbstractExtractor {
 
     protected Map<String, OllamaConfig> modelConfigMap = Collections.emptyMap();
 
+    protected OllamaRequestScheduler requestScheduler;
+
     @Override
     public void register(final List<String> keyList) {
         super.register(keyList);
@@ -67,6 +71,7 @@ public class OllamaExtractor extends AbstractExtractor {
         if (logger.isDebugEnabled()) {
             logger.debug("Ollama endpoint configured: {}", endpoint);
         }
+        requestScheduler = OllamaRequestScheduler.refreshInstance(fessConfig);
 
         modelConfigMap = keyList.stream().map(s -> {
             final String key = s.replace('/', '_');
@@ -110,16 +115,20 @@ public class OllamaExtractor extends AbstractExtractor {
         }
         buf.append('}');
 
-        try (final CurlResponse response =
-                Curl.post(endpoint + "/api/generate").header("Content-Type", "application/json").body(buf.toString()).execute()) {
-            final Map<String, Object> contentMap = response.getContent(OpenSearchCurl.jsonParser());
-            if (logger.isDebugEnabled()) {
-                logger.debug("response: ", contentMap);
-            }
-            if (contentMap.get("response") instanceof final String content) {
-                return new ExtractData(content);
-            }
-            throw new ExtractException("No content received from Ollama. Response: " + response);
+        try {
+            return requestScheduler.execute(Lane.EXTRACTOR, () -> {
+                try (final CurlResponse response = Curl.post(endpoint + "/api/generate").header("Content-Type", "application/json")
+                        .body(buf.toString()).execute()) {
+                    final Map<String, Object> contentMap = response.getContent(OpenSearchCurl.jsonParser());
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("response: ", contentMap);
+                    }
+                    if (contentMap.get("response") instanceof final String content) {
+                        return new ExtractData(content);
+                    }
+                    throw new ExtractException("No content received from Ollama. Response: " + response);
+                }
+            });
         } catch (final Exception e) {
             throw new ExtractException("Failed to process request to Ollama.", e);
         }
@@ -0,0 +1,537 @@
+/*
+ * Copyright 2012-2024 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.crawler.ollama;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codelibs.core.lang.StringUtil;
+import org.codelibs.fess.OllamaConstants;
+import org.codelibs.fess.crawler.exception.CrawlerSystemException;
+import org.codelibs.fess.mylasta.direction.FessConfig;
+import org.codelibs.fess.util.ComponentUtil;
+
+/**
+ * Schedules requests to the Ollama endpoint through weighted priority lanes.
+ *
+ * Each lane owns a share of the concurrency slots in proportion to its weight.
+ * A lane may borrow the slots of idle lanes, but it leaves a few slots free for
+ * each idle lane with a higher priority, and a freed slot always goes to the lane
+ * with the highest priority that is below its share, so that extraction on the
+ * crawler's critical path is not stalled by enrichment traffic. Within a lane,
+ * waiting requests are dequeued in arrival order, and requests that wait longer
+ * than their timeout are dropped instead of being sent. If the maximum concurrency
+ * is 0 or less, requests are not limited and run immediately.
+ *
+ * The shared instance is created on first use and reconfigured from the system
+ * properties by {@link #refreshInstance(FessConfig)}, which the Ollama components
+ * call when they are registered.
+ */
+public class OllamaRequestScheduler {
+
+    private static final Logger logger = LogManager.getLogger(OllamaRequestScheduler.class);
+
+    /** The default maximum number of concurrent requests. 0 or less means unlimited. */
+    public static final int DEFAULT_MAX_CONCURRENCY = 0;
+
+    /** The default number of slots kept free for each idle lane with a higher priority. */
+    public static final int DEFAULT_RESERVE = 1;
+
+    /** The default queue timeout in milliseconds. */
+    public static final long DEFAULT_TIMEOUT = 600000L;
+
+    /** The longest queue timeout in nanoseconds, which keeps deadlines from overflowing. */
+    protected static final long MAX_TIMEOUT_NANOS = Long.MAX_VALUE / 2;
+
+    private static OllamaRequestScheduler instance;
+
+    /**
+     * Request lanes, ordered from the highest priority to the lowest.
+     */
+    public enum Lane {
+        /** Text extraction on the crawler's critical path. */
+        EXTRACTOR("extractor", 6),
+        /** Optional enrichment of indexed documents. */
+        INGESTER("ingester", 3),
+        /** Background work such as model warm-up. Reserved for future callers. */
+        BACKGROUND("background", 1);
+
+        private final String key;
+
+        private final int defaultWeight;
+
+        Lane(final String key, final int defaultWeight) {
+            this.key = key;
+            this.defaultWeight = defaultWeight;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public int getDefaultWeight() {
+            return defaultWeight;
+        }
+    }
+
+    protected int maxConcurrency;
+
+    protected int reserve;
+
+    protected int[] weights;
+
+    protected int[] shares;
+
+    protected long[] timeouts;
+
+    protected final int[] running;
+
+    protected final ArrayDeque<Ticket>[] queues;
+
+    protected int totalRunning;
+
+    protected long sequence;
+
+    /**
+     * Creates a scheduler with {@link #DEFAULT_RESERVE}.
+     *
+     * @param maxConcurrency The maximum number of concurrent requests. 0 or less means unlimited.
+     * @param weightMap The weight of each lane. Missing lanes use the default weight.
+     * @param timeoutMap The queue timeout (ms) of each lane. Missing lanes use {@link #DEFAULT_TIMEOUT}; 0 or less waits forever.
+     */
+    public OllamaRequestScheduler(final int maxConcurrency, final Map<Lane, Integer> weightMap, final Map<Lane, Long> timeoutMap) {
+        this(maxConcurrency, DEFAULT_RESERVE, weightMap, timeoutMap);
+    }
+
+    /**
+     * Creates a scheduler.
+     *
+     * @param maxConcurrency The maximum number of concurrent requests. 0 or less means unlimited.
+     * @param reserve The number of slots kept free for each idle lane with a higher priority.
+     * @param weightMap The weight of each lane. Missing lanes use the default weight.
+     * @param timeoutMap The queue timeout (ms) of each lane. Missing lanes use {@link #DEFAULT_TIMEOUT}; 0 or less waits forever.
+     */
+    @SuppressWarnings("unchecked")
+    public OllamaRequestScheduler(final int maxConcurrency, final int reserve, final Map<Lane, Integer> weightMap,
+            final Map<Lane, Long> timeoutMap) {
+        final int size = Lane.values().length;
+        running = new int[size];
+        queues = new ArrayDeque[size];
+        for (int i = 0; i < size; i++) {
+            queues[i] = new ArrayDeque<>();
+        }
+        configure(maxConcurrency, reserve, weightMap, timeoutMap);
+    }
+
+    /**
+     * Applies new settings. Running requests are kept, and waiting requests are dispatched with the new settings.
+     *
+     * @param maxConcurrency The maximum number of concurrent requests. 0 or less means unlimited.
+     * @param reserve The number of slots kept free for each idle lane with a higher priority.
+     * @param weightMap The weight of each lane. Missing lanes use the default weight.
+     * @param timeoutMap The queue timeout (ms) of each lane. Missing lanes use {@link #DEFAULT_TIMEOUT}; 0 or less waits forever.
+     */
+    public synchronized void configure(final int maxConcurrency, final int reserve, final Map<Lane, Integer> weightMap,
+            final Map<Lane, Long> timeoutMap) {
+        if (reserve < 0) {
+            throw new IllegalArgumentException("reserve must not be negative: " + reserve);
+        }
+        final Lane[] lanes = Lane.values();
+        final int[] newWeights = new int[lanes.length];
+        final long[] newTimeouts = new long[lanes.length];
+        for (final Lane lane : lanes) {
+            final int i = lane.ordinal();
+            newWeights[i] = weightMap.getOrDefault(lane, lane.getDefaultWeight());
+            if (newWeights[i] < 0) {
+                throw new IllegalArgumentException("weight must not be negative: " + lane.getKey() + "=" + newWeights[i]);
+            }
+            newTimeouts[i] = timeoutMap.getOrDefault(lane, DEFAULT_TIMEOUT);
+        }
+        this.maxConcurrency = Math.max(0, maxConcurrency);
+        this.reserve = reserve;
+        weights = newWeights;
+        timeouts = newTimeouts;
+        shares = calculateShares(this.maxConcurrency, weights);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Ollama request scheduler: maxConcurrency={}, reserve={}", this.maxConcurrency, reserve);
+            for (final Lane lane : lanes) {
+                logger.debug("Lane {}: weight={}, share={}, timeout={}", lane.getKey(), weights[lane.ordinal()], shares[lane.ordinal()],
+                        timeouts[lane.ordinal()]);
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * Returns the shared scheduler, creating it from the system properties on first use.
+     *
+     * @return The shared scheduler.
+     */
+    public static synchronized OllamaRequestScheduler getInstance() {
+        if (instance == null) {
+            instance = create(ComponentUtil.getFessConfig());
+        }
+        return instance;
+    }
+
+    /**
+     * Reconfigures the shared scheduler from the system properties, creating it if needed.
+     *
+     * @param fessConfig The Fess configuration.
+     * @return The shared scheduler.
+     */
+    public static synchronized OllamaRequestScheduler refreshInstance(final FessConfig fessConfig) {
+        if (instance == null) {
+            instance = create(fessConfig);
+        } else {
+            final Settings settings = Settings.load(fessConfig);
+            instance.configure(settings.maxConcurrency(), settings.reserve(), settings.weightMap(), settings.timeoutMap());
+        }
+        return instance;
+    }
+
+    /**
+     * Creates a scheduler from the system properties.
+     *
+     * @param fessConfig The Fess configuration.
+     * @return The scheduler.
+     */
+    public static OllamaRequestScheduler create(final FessConfig fessConfig) {
+        final Settings settings = Settings.load(fessConfig);
+        return new OllamaRequestScheduler(settings.maxConcurrency(), settings.reserve(), settings.weightMap(), settings.timeoutMap());
+    }
+
+    private static int parseInt(final FessConfig fessConfig, final String key, final int defaultValue, final int minValue) {
+        final String value = fessConfig.getSystemProperty(key);
+        if (StringUtil.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            final int result = Integer.parseInt(value.trim());
+            if (result >= minValue) {
+                return result;
+            }
+        } catch (final NumberFormatException e) {
+            // fall through
+        }
+        logger.warn("Invalid value for {}: {}. Using default: {}", key, value, defaultValue);
+        return defaultValue;
+    }
+
+    private static long parseLong(final FessConfig fessConfig, final String key, final long defaultValue) {
+        final String value = fessConfig.getSystemProperty(key);
+        if (StringUtil.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (final NumberFormatException e) {
+            logger.warn("Invalid value for {}: {}. Using default: {}", key, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Distributes the slots to the lanes in proportion to their weights by the largest remainder method.
+     *
+     * @param maxConcurrency The number of slots.
+     * @param weights The weights of the lanes.
+     * @return The number of slots for each lane.
+     */
+    protected static int[] calculateShares(final int maxConcurrency, final int[] weights) {
+        final int[] result = new int[weights.length];
+        long totalWeight = 0;
+        for (final int weight : weights) {
+            totalWeight += weight;
+        }
+        if (totalWeight == 0) {
+            return result;
+        }
+        final long[] remainders = new long[weights.length];
+        int assigned = 0;
+        for (int i = 0; i < weights.length; i++) {
+            final long exact = (long) maxConcurrency * weights[i];
+            result[i] = (int) (exact / totalWeight);
+            remainders[i] = exact % totalWeight;
+            assigned += result[i];
+        }
+        while (assigned < maxConcurrency) {
+            int best = 0;
+            for (int i = 1; i < weights.length; i++) {
+                if (remainders[i] > remainders[best]) {
+                    best = i;
+                }
+            }
+            result[best]++;
+            remainders[best] = -1;
+            assigned++;
+        }
+        return result;
+    }
+
+    /**
+     * Executes the task in the lane using the lane's queue timeout.
+     *
+     * @param <T> The type of the result.
+     * @param lane The lane.
+     * @param task The task that sends the request.
+     * @return The result of the task.
+     * @throws Exception If the task fails.
+     */
+    public <T> T execute(final Lane lane, final Callable<T> task) throws Exception {
+        return execute(lane, getTimeout(lane), task);
+    }
+
+    /**
+     * Executes the task in the lane once a slot is granted.
+     *
+     * @param <T> The type of the result.
+     * @param lane The lane.
+     * @param timeout The queue timeout in milliseconds. 0 or less waits forever.
+     * @param task The task that sends the request.
+     * @return The result of the task.
+     * @throws Exception If the task fails.
+     * @throws CrawlerSystemException If no slot is granted before the deadline.
+     */
+    public <T> T execute(final Lane lane, final long timeout, final Callable<T> task) throws Exception {
+        acquire(lane, timeout);
+        try {
+            return task.call();
+        } finally {
+            release(lane);
+        }
+    }
+
+    protected synchronized void acquire(final Lane lane, final long timeout) {
+        final int i = lane.ordinal();
+        if (maxConcurrency <= 0) {
+            running[i]++;
+            totalRunning++;
+            return;
+        }
+        final long timeoutNanos = Math.min(TimeUnit.MILLISECONDS.toNanos(timeout), MAX_TIMEOUT_NANOS);
+        final Ticket ticket = new Ticket(timeout > 0, System.nanoTime() + timeoutNanos, sequence++);
+        queues[i].add(ticket);
+        dispatch();
+        while (!ticket.granted) {
+            final long remaining = ticket.deadline - System.nanoTime();
+            if (ticket.expired || ticket.hasDeadline && remaining <= 0) {
+                queues[i].remove(ticket);
+                throw new CrawlerSystemException("Timed out waiting for an Ollama request slot in " + lane.getKey() + " lane.");
+            }
+            try {
+                if (ticket.hasDeadline) {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } else {
+                    wait();
+                }
+            } catch (final InterruptedException e) {
+                if (ticket.granted) {
+                    release(lane);
+                } else {
+                    queues[i].remove(ticket);
+                }
+                Thread.currentThread().interrupt();
+                throw new CrawlerSystemException("Interrupted while waiting for an Ollama request slot.", e);
+            }
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Granted a slot in {} lane: running={}, total={}", lane.getKey(), running[i], totalRunning);
+        }
+    }
+
+    protected synchronized void release(final Lane lane) {
+        running[lane.ordinal()]--;
+        totalRunning--;
+        dispatch();
+    }
+
+    /**
+     * Grants free slots to waiting requests and wakes up their threads.
+     */
+    protected void dispatch() {
+        final long now = System.nanoTime();
+        boolean changed = false;
+        for (final ArrayDeque<Ticket> queue : queues) {
+            changed |= purgeExpired(queue, now);
+        }
+        while (maxConcurrency <= 0 || totalRunning < maxConcurrency) {
+            final int i = selectLane();
+            if (i < 0) {
+                break;
+            }
+            final Ticket ticket = queues[i].poll();
+            ticket.granted = true;
+            running[i]++;
+            totalRunning++;
+            changed = true;
+        }
+        if (changed) {
+            notifyAll();
+        }
+    }
+
+    private boolean purgeExpired(final ArrayDeque<Ticket> queue, final long now) {
+        return queue.removeIf(t -> {
+            if (t.hasDeadline && t.deadline - now <= 0) {
+                t.expired = true;
+                return true;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Selects the lane to grant the next slot to.
+     *
+     * @return The index of the lane, or -1 if no lane can run.
+     */
+    protected int selectLane() {
+        if (maxConcurrency <= 0) {
+            for (int i = 0; i < queues.length; i++) {
+                if (!queues[i].isEmpty()) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // lanes within their own share
+        int selected = -1;
+        for (int i = 0; i < queues.length; i++) {
+            if (!queues[i].isEmpty() && running[i] < shares[i] && isPreferred(i, selected)) {
+                selected = i;
+            }
+        }
+        if (selected >= 0) {
+            return selected;
+        }
+
+        // work stealing in priority order: every lane below its share is idle at this point,
+        // and a few of its unused slots are kept free for it if it has a higher priority
+        final int free = maxConcurrency - totalRunning;
+        int reserved = 0;
+        for (int i = 0; i < queues.length; i++) {
+            if (!queues[i].isEmpty() && (totalRunning == 0 || free > reserved)) {
+                return i;
+            }
+            reserved += Math.min(reserve, Math.max(0, shares[i] - running[i]));
+        }
+        return -1;
+    }
+
+    private boolean isPreferred(final int i, final int current) {
+        if (current < 0) {
+            return true;
+        }
+        final double score = getLoad(i);
+        final double currentScore = getLoad(current);
+        if (score != currentScore) {
+            return score < currentScore;
+        }
+        return queues[i].peek().seq < queues[current].peek().seq;
+    }
+
+    private double getLoad(final int i) {
+        if (weights[i] == 0) {
+            return Double.MAX_VALUE;
+        }
+        return (running[i] + 1.0) / weights[i];
+    }
+
+    /**
+     * Returns the number of slots reserved for the lane.
+     *
+     * @param lane The lane.
+     * @return The number of slots.
+     */
+    public synchronized int getShare(final Lane lane) {
+        return shares[lane.ordinal()];
+    }
+
+    /**
+     * Returns the queue timeout of the lane.
+     *
+     * @param lane The lane.
+     * @return The queue timeout in milliseconds.
+     */
+    public synchronized long getTimeout(final Lane lane) {
+        return timeouts[lane.ordinal()];
+    }
+
+    /**
+     * Returns the number of running requests in the lane.
+     *
+     * @param lane The lane.
+     * @return The number of running requests.
+     */
+    public synchronized int getRunning(final Lane lane) {
+        return running[lane.ordinal()];
+    }
+
+    /**
+     * Returns the number of waiting requests in the lane.
+     *
+     * @param lane The lane.
+     * @return The number of waiting requests.
+     */
+    public synchronized int getWaiting(final Lane lane) {
+        return queues[lane.ordinal()].size();
+    }
+
+    /**
+     * Scheduler settings read from the system properties. Invalid values are logged and replaced by the defaults.
+     */
+    protected record Settings(int maxConcurrency, int reserve, Map<Lane, Integer> weightMap, Map<Lane, Long> timeoutMap) {
+
+        protected static Settings load(final FessConfig fessConfig) {
+            final int maxConcurrency =
+                    parseInt(fessConfig, OllamaConstants.OLLAMA_SCHEDULER_MAX_CONCURRENCY, DEFAULT_MAX_CONCURRENCY, Integer.MIN_VALUE);
+            final int reserve = parseInt(fessConfig, OllamaConstants.OLLAMA_SCHEDULER_RESERVE, DEFAULT_RESERVE, 0);
+            final Map<Lane, Integer> weightMap = new EnumMap<>(Lane.class);
+            final Map<Lane, Long> timeoutMap = new EnumMap<>(Lane.class);
+            for (final Lane lane : Lane.values()) {
+                weightMap.put(lane,
+                        parseInt(fessConfig, OllamaConstants.OLLAMA_SCHEDULER_WEIGHT_PREFIX + lane.getKey(), lane.getDefaultWeight(), 0));
+                timeoutMap.put(lane, parseLong(fessConfig, OllamaConstants.OLLAMA_SCHEDULER_TIMEOUT_PREFIX + lane.getKey(), DEFAULT_TIMEOUT));
+            }
+            return new Settings(maxConcurrency, reserve, weightMap, timeoutMap);
+        }
+    }
+
+    protected static class Ticket {
+        protected final boolean hasDeadline;
+
+        protected final long deadline;
+
+        protected final long seq;
+
+        protected boolean granted;
+
+        protected boolean expired;
+
+        protected Ticket(final boolean hasDeadline, final long deadline, final long seq) {
+            this.hasDeadline = hasDeadline;
+            this.deadline = deadline;
+            this.seq = seq;
+        }
+    }
+}
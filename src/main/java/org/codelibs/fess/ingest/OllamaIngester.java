@@ -32,6 +32,8 @@ import org.codelibs.fess.crawler.entity.ResponseData;
 import org.codelibs.fess.crawler.entity.ResultData;
 import org.codelibs.fess.crawler.exception.CrawlerSystemException;
 import org.codelibs.fess.crawler.ollama.OllamaConfig;
+import org.codelibs.fess.crawler.ollama.OllamaRequestScheduler;
+import org.codelibs.fess.crawler.ollama.OllamaRequestScheduler.Lane;
 import org.codelibs.fess.entity.DataStoreParams;
 import org.codelibs.fess.mylasta.direction.FessConfig;
 import org.codelibs.fess.util.ComponentUtil;
@@ -49,6 +51,9 @@ public class OllamaIngester extends Ingester {
     /** The map of model configurations. */
     protected Map<String, OllamaConfig> modelConfigMap = Collections.emptyMap();
 
+    /** The scheduler shared with the other Ollama components. */
+    protected OllamaRequestScheduler requestScheduler;
+
     @Override
     public void register() {
         super.register();
@@ -64,6 +69,7 @@ public class OllamaIngester extends Ingester {
         if (logger.isDebugEnabled()) {
             logger.debug("Ollama endpoint configured: {}", endpoint);
         }
+        requestScheduler = OllamaRequestScheduler.refreshInstance(fessConfig);
 
         modelConfigMap = Arrays.stream(getMimeTypeKeysFromSystemProperties()).map(key -> {
             final String model = fessConfig.getSystemProperty(OllamaConstants.OLLAMA_INGESTER_MODEL_PREFIX + key);
@@ -137,19 +143,23 @@ public class OllamaIngester extends Ingester {
                 buf.append(",\"prompt\":\"").append(StringEscapeUtils.escapeJson(prompt)).append('"');
                 buf.append('}');
 
-                try (final CurlResponse response =
-                        Curl.post(endpoint + "/api/generate").header("Content-Type", "application/json").body(buf.toString()).execute()) {
-                    final Map<String, Object> contentMap = response.getContent(OpenSearchCurl.jsonParser());
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("response: ", contentMap);
-                    }
-                    if (contentMap.get("response") instanceof final String content) {
-                        if (logger.isDebugEnabled()) {
-                            logger.debug("Content received from Ollama: {}", content);
+                try {
+                    return requestScheduler.execute(Lane.INGESTER, () -> {
+                        try (final CurlResponse response = Curl.post(endpoint + "/api/generate")
+                                .header("Content-Type", "application/json").body(buf.toString()).execute()) {
+                            final Map<String, Object> contentMap = response.getContent(OpenSearchCurl.jsonParser());
+                            if (logger.isDebugEnabled()) {
+                                logger.debug("response: ", contentMap);
+                            }
+                            if (contentMap.get("response") instanceof final String content) {
+                                if (logger.isDebugEnabled()) {
+                                    logger.debug("Content received from Ollama: {}", content);
+                                }
+                                target.put(ollamaConfig.outputField(), content);
+                            }
+                            return target;
                         }
-                        target.put(ollamaConfig.outputField(), content);
-                    }
-                    return target;
+                    });
                 } catch (final Exception e) {
                     throw new CrawlerSystemException("Failed to process request to Ollama.", e);
                 }
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2012-2024 CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.codelibs.fess.crawler.ollama;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.codelibs.fess.OllamaConstants;
+import org.codelibs.fess.crawler.exception.CrawlerSystemException;
+import org.codelibs.fess.crawler.ollama.OllamaRequestScheduler.Lane;
+import org.codelibs.fess.mylasta.direction.FessConfig;
+import org.dbflute.utflute.core.PlainTestCase;
+
+public class OllamaRequestSchedulerTest extends PlainTestCase {
+
+    public void test_calculateShares() {
+        assertEquals("[3, 1, 0]", Arrays.toString(OllamaRequestScheduler.calculateShares(4, new int[] { 6, 3, 1 })));
+        assertEquals("[1, 0, 0]", Arrays.toString(OllamaRequestScheduler.calculateShares(1, new int[] { 6, 3, 1 })));
+        assertEquals("[5, 3, 0]", Arrays.toString(OllamaRequestScheduler.calculateShares(8, new int[] { 6, 3, 0 })));
+        assertEquals("[0, 0, 0]", Arrays.toString(OllamaRequestScheduler.calculateShares(4, new int[] { 0, 0, 0 })));
+    }
+
+    public void test_execute() throws Exception {
+        final OllamaRequestScheduler scheduler = new OllamaRequestScheduler(2, Collections.emptyMap(), Collections.emptyMap());
+        assertEquals("abc", scheduler.execute(Lane.EXTRACTOR, () -> "abc"));
+        assertEquals(0, scheduler.getRunning(Lane.EXTRACTOR));
+
+        try {
+            scheduler.execute(Lane.INGESTER, () -> {
+                throw new IllegalStateException("test");
+            });
+            fail();
+        } catch (final IllegalStateException e) {
+            assertEquals("test", e.getMessage());
+        }
+        assertEquals(0, scheduler.getRunning(Lane.INGESTER));
+    }
+
+    public void test_create() {
+        final OllamaRequestScheduler scheduler = OllamaRequestScheduler.create(new FessConfig.SimpleImpl() {
+            @Override
+            public String getSystemProperty(final String key) {
+                if (OllamaConstants.OLLAMA_SCHEDULER_MAX_CONCURRENCY.equals(key)) {
+                    return "8";
+                }
+                if ((OllamaConstants.OLLAMA_SCHEDULER_WEIGHT_PREFIX + "ingester").equals(key)) {
+                    return "abc";
+                }
+                if ((OllamaConstants.OLLAMA_SCHEDULER_TIMEOUT_PREFIX + "extractor").equals(key)) {
+                    return "1s";
+                }
+                if ((OllamaConstants.OLLAMA_SCHEDULER_WEIGHT_PREFIX + "background").equals(key)) {
+                    return "-1";
+                }
+                return null;
+            }
+        });
+        assertEquals(5, scheduler.getShare(Lane.EXTRACTOR));
+        assertEquals(2, scheduler.getShare(Lane.INGESTER));
+        assertEquals(1, scheduler.getShare(Lane.BACKGROUND));
+        assertEquals(OllamaRequestScheduler.DEFAULT_TIMEOUT, scheduler.getTimeout(Lane.EXTRACTOR));
+
+        final OllamaRequestScheduler unlimited = OllamaRequestScheduler.create(new FessConfig.SimpleImpl() {
+            @Override
+            public String getSystemProperty(final String key) {
+                return null;
+            }
+        });
+        assertEquals(0, unlimited.getShare(Lane.EXTRACTOR));
+    }
+
+    public void test_workStealing() throws Exception {
+        final OllamaRequestScheduler scheduler = new OllamaRequestScheduler(4, Collections.emptyMap(), Collections.emptyMap());
+        final List<Thread> threads = new ArrayList<>();
+        final List<CountDownLatch> ingesterLatches = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            final CountDownLatch latch = new CountDownLatch(1);
+            ingesterLatches.add(latch);
+            threads.add(startBlockingThread(scheduler, Lane.INGESTER, latch));
+        }
+        // an ingester burst fills the idle slots except one kept for the idle extractor lane
+        waitFor(() -> scheduler.getRunning(Lane.INGESTER) == 3 && scheduler.getWaiting(Lane.INGESTER) == 2);
+
+        final CountDownLatch extractorLatch = new CountDownLatch(1);
+        threads.add(startBlockingThread(scheduler, Lane.EXTRACTOR, extractorLatch));
+        waitFor(() -> scheduler.getRunning(Lane.EXTRACTOR) == 1);
+        threads.add(startBlockingThread(scheduler, Lane.EXTRACTOR, extractorLatch));
+        waitFor(() -> scheduler.getWaiting(Lane.EXTRACTOR) == 1);
+
+        // the next free slot goes to the extractor ahead of the waiting ingester requests
+        ingesterLatches.get(0).countDown();
+        waitFor(() -> scheduler.getRunning(Lane.EXTRACTOR) == 2 && scheduler.getWaiting(Lane.EXTRACTOR) == 0);
+        assertEquals(2, scheduler.getRunning(Lane.INGESTER));
+        assertEquals(2, scheduler.getWaiting(Lane.INGESTER));
+
+        extractorLatch.countDown();
+        ingesterLatches.forEach(CountDownLatch::countDown);
+        for (final Thread thread : threads) {
+            thread.join(10000L);
+        }
+        assertEquals(0, scheduler.getRunning(Lane.EXTRACTOR));
+        assertEquals(0, scheduler.getRunning(Lane.INGESTER));
+        assertEquals(0, scheduler.getWaiting(Lane.INGESTER));
+    }
+
+    public void test_unlimited() throws Exception {
+        final OllamaRequestScheduler scheduler = new OllamaRequestScheduler(0, Collections.emptyMap(), Collections.emptyMap());
+        final CountDownLatch done = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            threads.add(startBlockingThread(scheduler, Lane.INGESTER, done));
+        }
+        waitFor(() -> scheduler.getRunning(Lane.INGESTER) == 5);
+
+        done.countDown();
+        for (final Thread thread : threads) {
+            thread.join(10000L);
+        }
+        assertEquals(0, scheduler.getRunning(Lane.INGESTER));
+    }
+
+    public void test_configure() throws Exception {
+        final OllamaRequestScheduler scheduler = new OllamaRequestScheduler(1, Collections.emptyMap(), Collections.emptyMap());
+        final CountDownLatch done = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            threads.add(startBlockingThread(scheduler, Lane.INGESTER, done));
+        }
+        waitFor(() -> scheduler.getRunning(Lane.INGESTER) == 1 && scheduler.getWaiting(Lane.INGESTER) == 2);
+
+        // waiting requests are dispatched with the new settings
+        scheduler.configure(3, 1, Collections.emptyMap(), Collections.emptyMap());
+        waitFor(() -> scheduler.getRunning(Lane.INGESTER) == 2 && scheduler.getWaiting(Lane.INGESTER) == 1);
+        scheduler.configure(0, 1, Collections.emptyMap(), Collections.emptyMap());
+        waitFor(() -> scheduler.getRunning(Lane.INGESTER) == 3 && scheduler.getWaiting(Lane.INGESTER) == 0);
+
+        done.countDown();
+        for (final Thread thread : threads) {
+            thread.join(10000L);
+        }
+        assertEquals(0, scheduler.getRunning(Lane.INGESTER));
+    }
+
+    public void test_borrowFromLowerLane() throws Exception {
+        final OllamaRequestScheduler scheduler = new OllamaRequestScheduler(4, Collections.emptyMap(), Collections.emptyMap());
+        final CountDownLatch done = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            threads.add(startBlockingThread(scheduler, Lane.EXTRACTOR, done));
+        }
+        waitFor(() -> scheduler.getRunning(Lane.EXTRACTOR) == 4 && scheduler.getWaiting(Lane.EXTRACTOR) == 1);
+
+        done.countDown();
+        for (final Thread thread : threads) {
+            thread.join(10000L);
+        }
+        assertEquals(0, scheduler.getRunning(Lane.EXTRACTOR));
+    }
+
+    public void test_fifo() throws Exception {
+        final OllamaRequestScheduler scheduler = new OllamaRequestScheduler(1, Collections.emptyMap(), Collections.emptyMap());
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread blocker = startBlockingThread(scheduler, Lane.EXTRACTOR, done);
+        waitFor(() -> scheduler.getRunning(Lane.EXTRACTOR) == 1);
+
+        final List<String> order = new CopyOnWriteArrayList<>();
+        final Thread first = new Thread(() -> {
+            try {
+                scheduler.execute(Lane.INGESTER, 0L, () -> order.add("first"));
+            } catch (final Exception e) {
+                // ignore
+            }
+        });
+        first.start();
+        waitFor(() -> scheduler.getWaiting(Lane.INGESTER) == 1);
+        final Thread second = new Thread(() -> {
+            try {
+                scheduler.execute(Lane.INGESTER, 5000L, () -> order.add("second"));
+            } catch (final Exception e) {
+                // ignore
+            }
+        });
+        second.start();
+        waitFor(() -> scheduler.getWaiting(Lane.INGESTER) == 2);
+
+        done.countDown();
+        blocker.join(10000L);
+        first.join(10000L);
+        second.join(10000L);
+        assertEquals(List.of("first", "second"), order);
+    }
+
+    public void test_priority() throws Exception {
+        final OllamaRequestScheduler scheduler = new OllamaRequestScheduler(1, Collections.emptyMap(), Collections.emptyMap());
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final List<Lane> order = new CopyOnWriteArrayList<>();
+        final Thread blocker = new Thread(() -> {
+            try {
+                scheduler.execute(Lane.BACKGROUND, () -> {
+                    started.countDown();
+                    return done.await(10, TimeUnit.SECONDS);
+                });
+            } catch (final Exception e) {
+                // ignore
+            }
+        });
+        blocker.start();
+        started.await(10, TimeUnit.SECONDS);
+
+        final Thread ingester = startThread(scheduler, Lane.INGESTER, order);
+        waitFor(() -> scheduler.getWaiting(Lane.INGESTER) == 1);
+        final Thread extractor = startThread(scheduler, Lane.EXTRACTOR, order);
+        waitFor(() -> scheduler.getWaiting(Lane.EXTRACTOR) == 1);
+
+        done.countDown();
+        blocker.join(10000L);
+        ingester.join(10000L);
+        extractor.join(10000L);
+        assertEquals(List.of(Lane.EXTRACTOR, Lane.INGESTER), order);
+    }
+
+    public void test_timeout() throws Exception {
+        final OllamaRequestScheduler scheduler = new OllamaRequestScheduler(1, Collections.emptyMap(), Collections.emptyMap());
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread blocker = new Thread(() -> {
+            try {
+                scheduler.execute(Lane.EXTRACTOR, () -> {
+                    started.countDown();
+                    return done.await(10, TimeUnit.SECONDS);
+                });
+            } catch (final Exception e) {
+                // ignore
+            }
+        });
+        blocker.start();
+        started.await(10, TimeUnit.SECONDS);
+
+        try {
+            scheduler.execute(Lane.INGESTER, 100L, () -> "ng");
+            fail();
+        } catch (final CrawlerSystemException e) {
+            // ok
+        }
+        assertEquals(0, scheduler.getWaiting(Lane.INGESTER));
+
+        done.countDown();
+        blocker.join(10000L);
+        assertEquals("ok", scheduler.execute(Lane.INGESTER, 100L, () -> "ok"));
+    }
+
+    private Thread startThread(final OllamaRequestScheduler scheduler, final Lane lane, final List<Lane> order) {
+        final Thread thread = new Thread(() -> {
+            try {
+                scheduler.execute(lane, () -> order.add(lane));
+            } catch (final Exception e) {
+                // ignore
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private Thread startBlockingThread(final OllamaRequestScheduler scheduler, final Lane lane, final CountDownLatch done) {
+        final Thread thread = new Thread(() -> {
+            try {
+                scheduler.execute(lane, () -> done.await(10, TimeUnit.SECONDS));
+            } catch (final Exception e) {
+                // ignore
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private void waitFor(final BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 1000 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(10L);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+}